@@ -1,6 +1,10 @@
 package com.hannonhill.jira.plugins;
 
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 
 import com.atlassian.jira.ComponentManager;
 import com.atlassian.jira.ManagerFactory;
@@ -35,6 +39,12 @@ import com.sforce.soap.enterprise.sobject._case;
 public class SalesforceConnectorListener extends AbstractIssueEventListener
 		implements IssueEventListener {
 	
+	/* Goes through Jira's log4j configuration, so levels and appenders (including an AsyncAppender in front of the file appender) are set in log4j.properties */
+	private static final Logger log = Logger.getLogger(SalesforceConnectorListener.class);
+	private static final String MDC_ISSUE_KEY = "jira.issue";//correlation id for every log line written while handling an issue event, shown when the layout's ConversionPattern contains %X{jira.issue}
+	private static final long ERROR_LOG_INTERVAL = 60 * 1000L;//the same error is only logged at ERROR level once a minute
+	private static final ConcurrentHashMap<String, Long> _lastErrorLogged = new ConcurrentHashMap<String, Long>();
+	
 	private String _uName, _password, _token, _emails;
 	private String[] _projects;
 	
@@ -76,7 +86,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 			
 			if( lr.isPasswordExpired() )
 			{
-				System.out.println("The supplied password has expired!");
+				log.warn("The supplied Salesforce password has expired!");
 			}
 			
 			binding._setProperty(SoapBindingStub.ENDPOINT_ADDRESS_PROPERTY, lr.getServerUrl());//Once logged in you have to set what Salesforce Instance your organization is assigned to
@@ -84,7 +94,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 			SessionHeader sh = new SessionHeader();
 			sh.setSessionId(lr.getSessionId());
 			binding.setHeader(new SforceServiceLocator().getServiceName().getNamespaceURI(), "SessionHeader", sh);
-			System.out.println("Salesforce Login Successful");
+			log.debug("Salesforce Login Successful");
 			return binding;
 			
 		}catch(LoginFault ex){
@@ -99,13 +109,13 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	                exCode == ExceptionCode.SERVER_UNAVAILABLE ||
 	                exCode == ExceptionCode.TRIAL_EXPIRED ||
 	                exCode == ExceptionCode.UNSUPPORTED_CLIENT) {
-	            	System.out.println("Please Be Sure the Sforce Username and Password are valid " + exCode.toString() + " " + ex.toString());
+	            	logError("Please Be Sure the Sforce Username and Password are valid " + exCode.toString(), ex);
 	            }else{
-	            	System.out.println("An unexpected error has occured: " + ex.getExceptionCode() + " - " + ex.getExceptionMessage());
+	            	logError("An unexpected error has occured logging in to Salesforce: " + ex.getExceptionCode(), ex);
 	            }
 	            throw ex;
 		}catch(Exception ex){
-			System.out.println("An unexpected error has occured:" + ex.getMessage());
+			logError("An unexpected error has occured logging in to Salesforce", ex);
 			throw ex;
 		}
 	}
@@ -138,11 +148,14 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 		_case[] ca = {c};//wrap object in an array for the create method
 		try{
 			SaveResult[] sr  = binding.create(ca);
-			System.out.println("Case Created");
+			if(log.isDebugEnabled())
+			{
+				log.debug("Case Created: " + sr[0].getId());
+			}
 			return sr[0].getId();
 		}catch(Exception ex)
 		{
-			System.out.println("Error Creating Case:\n " + ex.getLocalizedMessage());
+			logError("Error Creating Case", ex);
 			throw ex;
 		}		
 	}
@@ -155,7 +168,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	 */
 	public static void closeCase(String caseId, SoapBindingStub binding) throws Exception
 	{
-		QueryResult qr = runQuery("select Id, Status from Case where id = '" + caseId + "'", binding);
+		QueryResult qr = runQuery("select Id, Status from Case where id = '" + escapeSoql(caseId) + "'", binding);
 		if(qr.getSize() == 1)
 		{
 			_case c = (_case)qr.getRecords(0);
@@ -163,10 +176,10 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 			_case[] ca = {c};//wrap object in an array for the update method
 			try{
 				binding.update(ca);
-				System.out.println("Case Closed");
+				log.debug("Case Closed");
 			}catch(Exception ex)
 			{
-				System.out.println("Error Closing Case:\n " + ex.getLocalizedMessage());
+				logError("Error Closing Case", ex);
 				throw ex;
 			}
 		}
@@ -184,7 +197,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	 */
 	public static void updateCase(String caseId, String contactId, String accountId, String summary, String description, SoapBindingStub binding) throws Exception
 	{
-		QueryResult qr = runQuery("select Id, ContactId from Case where id = '" + caseId + "'", binding);
+		QueryResult qr = runQuery("select Id, ContactId from Case where id = '" + escapeSoql(caseId) + "'", binding);
 		if(qr.getSize() == 1)
 		{
 			_case c = (_case)qr.getRecords(0);
@@ -195,10 +208,10 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 			_case[] ca = {c};//wrap object in an array for the update method
 			try{
 				binding.update(ca);
-				System.out.println("Case Contact Updated");
+				log.debug("Case Contact Updated");
 			}catch(Exception ex)
 			{
-				System.out.println("Error Updating Case Contact:\n " + ex.getLocalizedMessage());
+				logError("Error Updating Case Contact", ex);
 				throw ex;
 			}
 		}
@@ -212,7 +225,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	 */
 	public static String getContactIdByCase(String caseId, SoapBindingStub binding) throws Exception
 	{
-		QueryResult qr = runQuery("select Id, ContactId from Case where id = '" + caseId + "'", binding);
+		QueryResult qr = runQuery("select Id, ContactId from Case where id = '" + escapeSoql(caseId) + "'", binding);
 		if(qr.getSize() == 1)
 		{
 			_case c = (_case)qr.getRecords(0);			
@@ -229,7 +242,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	 */
 	public static String getContactEmailById(String contactId, SoapBindingStub binding) throws Exception
 	{
-		QueryResult qr = runQuery("Select Email from Contact where id = '" + contactId + "'", binding);
+		QueryResult qr = runQuery("Select Email from Contact where id = '" + escapeSoql(contactId) + "'", binding);
 		if(qr.getSize() == 1)
 		{
 			Contact con = (Contact)qr.getRecords(0);
@@ -255,11 +268,12 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 			qr = binding.query(query);
 		}catch (ApiFault ex)
 		{	
-			System.out.println("\nFailed to execute query succesfully, error message was API Fault:\n" + ex.getMessage() + "\n Query: " + query);
+			//the fault message repeats the query text, so only the exception code is logged
+			logError("Failed to execute query succesfully, API Fault " + ex.getExceptionCode() + ". Query: " + maskQuery(query), ex.getClass().getName());
 			throw ex;
 		}catch(Exception ex)
 		{
-			System.out.println("\nFailed to execute query succesfully, error message was:\n" + ex.getMessage()+ "\n Query: " + query);
+			logError("Failed to execute query succesfully, " + ex.getClass().getName() + ". Query: " + maskQuery(query), ex.getClass().getName());
 			throw ex;
 		}
 		return qr;
@@ -274,7 +288,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	 */
 	public static String[] getUserInfoByEmail(String email, SoapBindingStub binding) throws Exception
 	{
-		QueryResult qr = runQuery("select Id, Name from User where email = '" + email + "'", binding);
+		QueryResult qr = runQuery("select Id, Name from User where email = '" + escapeSoql(email) + "'", binding);
 		if(qr.getSize() >= 1)// there is an off chance that the email address will be associated with multiple users, we figured it would be better for it to assign the case to the wrong user, than do nothing at all for no apparent reason
 		{
 			com.sforce.soap.enterprise.sobject.User u = (com.sforce.soap.enterprise.sobject.User)qr.getRecords(0);
@@ -294,7 +308,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	{
 		//return an array 0. Contact ID 1. Account Id 2. Name 3.Phone 4.Email 
 		String[] ret = new String[5];
-		QueryResult qr = runQuery("select Id, AccountId, Name, Phone, Email from Contact where email = '" + email + "'", binding);
+		QueryResult qr = runQuery("select Id, AccountId, Name, Phone, Email from Contact where email = '" + escapeSoql(email) + "'", binding);
 		if(qr.getSize() >= 1)// there is an off chance that the email address will be associated with multiple users, we figured it would be better for it to assign the case to the wrong user, than do nothing at all for no apparent reason
 		{
 			Contact c = (Contact)qr.getRecords(0);
@@ -319,7 +333,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	{
 		//returns an array 0. Account Name 1. Account Owner ID
 		String[] ret = new String[2];
-		QueryResult qr = runQuery("select Name, OwnerId from Account where id = '" + id + "'", binding);
+		QueryResult qr = runQuery("select Name, OwnerId from Account where id = '" + escapeSoql(id) + "'", binding);
 		if(qr.getSize() == 1)
 		{
 			Account a = (Account)qr.getRecords(0);
@@ -339,7 +353,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	 */
 	public static String getUserNameById(String id, SoapBindingStub binding) throws Exception
 	{
-		QueryResult qr = runQuery("select Name from User where id = '" + id + "'", binding);
+		QueryResult qr = runQuery("select Name from User where id = '" + escapeSoql(id) + "'", binding);
 		if(qr.getSize() == 1)
 		{
 			com.sforce.soap.enterprise.sobject.User u = (com.sforce.soap.enterprise.sobject.User)qr.getRecords(0);
@@ -348,6 +362,74 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 		return null;
 	}
 	
+	/**
+	 * Escapes a value for use inside a quoted SOQL string literal
+	 * @param value value to escape
+	 * @return value with backslashes and single quotes escaped
+	 */
+	public static String escapeSoql(String value)
+	{
+		if(value == null)
+		{
+			return null;
+		}
+		return value.replace("\\", "\\\\").replace("'", "\\'");
+	}
+	
+	/**
+	 * Removes the quoted literals (email addresses, ids) from a SOQL query so it can be logged
+	 * @param query SOQL query, with its literals escaped by escapeSoql()
+	 * @return query with every literal replaced by '?'
+	 */
+	public static String maskQuery(String query)
+	{
+		return query.replaceAll("'(?:[^'\\\\]|\\\\.)*'", "'?'");
+	}
+	
+	/**
+	 * Logs an error, only logging the same message at ERROR level once every ERROR_LOG_INTERVAL 
+	 * so a Salesforce outage doesn't flood the log with one stack trace per event. Repeats are logged at DEBUG.
+	 * @param message Message to log, repeats are detected by the message and exception type
+	 * @param ex Exception that was thrown
+	 */
+	public static void logError(String message, Throwable ex)
+	{
+		if(shouldLogError(message + ex.getClass().getName()))
+		{
+			log.error(message, ex);
+		}else if(log.isDebugEnabled()){
+			log.debug(message, ex);
+		}
+	}
+	
+	/**
+	 * Logs an error without its exception, for exceptions whose message can't be written to the log.
+	 * Rate limited the same way as logError(String, Throwable).
+	 * @param message Message to log
+	 * @param exceptionType Class name of the exception that was thrown, repeats are detected by the message and this
+	 */
+	public static void logError(String message, String exceptionType)
+	{
+		if(shouldLogError(message + exceptionType))
+		{
+			log.error(message);
+		}else{
+			log.debug(message);
+		}
+	}
+	
+	/**
+	 * @param key Message and exception type of the error
+	 * @return true if this error hasn't been logged at ERROR level within the last ERROR_LOG_INTERVAL
+	 */
+	private static boolean shouldLogError(String key)
+	{
+		Long now = Long.valueOf(System.currentTimeMillis());
+		Long last = _lastErrorLogged.putIfAbsent(key, now);
+		//only the thread that gets to store its timestamp logs at ERROR, so concurrent events can't both log inside one interval
+		return last == null || (now.longValue() - last.longValue() >= ERROR_LOG_INTERVAL && _lastErrorLogged.replace(key, last, now));
+	}
+	
 	/**
 	 * Searches for a String entry in a String[] array
 	 * @param haystack Array to search for the String in
@@ -378,7 +460,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 		try{
 			sendEmail(email);
 		}catch(MailException nex){
-			System.out.println(nex);
+			logError("Could not send Jira-Salesforce notification email", nex);
 		}
 	}
 	
@@ -396,7 +478,7 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 		try{
 			sendEmail(email);
 		}catch(MailException nex){
-			System.out.println(nex);
+			logError("Could not send Jira-Salesforce notification email", nex);
 		}
 	}
 	
@@ -414,20 +496,59 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 			mailServer.send(email);	
 		}catch(Exception ex)
 		{
-			System.out.println(ex);
+			logError("Could not send Jira-Salesforce notification email", ex);
 		}		
 	}
 	
+	/**
+	 * Sets a Jira custom field, skipping the write when the field already shows the value
+	 * @param field Custom field to set
+	 * @param issue Jira issue to set the field on
+	 * @param value New value of the field
+	 * @param changeHolder Change holder for the update
+	 */
+	public static void updateFieldIfChanged(CustomField field, Issue issue, Object value, IssueChangeHolder changeHolder)
+	{
+		Object current = issue.getCustomFieldValue(field);
+		if(current == null ? value == null : current.equals(value))
+		{
+			return;
+		}
+		field.updateValue(null, issue, new ModifiedValue(current, value), changeHolder);
+	}
+	
+	/**
+	 * Gets the Salesforce Case Id of an issue. The "Salesforce Case Id" field is authoritative, 
+	 * if an administrator cleared or re-linked it the sync state is reset to match.
+	 * @param issue Jira issue
+	 * @param state Sync state of the issue
+	 * @param cfCaseId "Salesforce Case Id" custom field
+	 * @return Salesforce Id of the Case, null or "" if no case has been created
+	 */
+	public static String getCaseId(Issue issue, SalesforceSyncState state, CustomField cfCaseId)
+	{
+		String caseId = (String)issue.getCustomFieldValue(cfCaseId);
+		String stateCaseId = state.getCaseId();
+		if(stateCaseId != null && !stateCaseId.equals(caseId))
+		{
+			log.info("Salesforce Case Id field was changed in Jira, resetting the sync state");
+			state.clearCase();
+		}
+		return caseId;
+	}
+	
 	/**
 	 * Show in Jira that an issue is not synced with Salesforce
 	 * @param issue Jira issue that is out of sync
+	 * @param ex Exception that caused the sync to fail
 	 */
-	public void unsyncIssue(Issue issue)
+	public void unsyncIssue(Issue issue, Exception ex)
 	{
+		SalesforceSyncState.forIssue(issue).markUnsynced(ex);
 		CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
 		IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
 		CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
-		cfSync.updateValue(null, issue, new ModifiedValue(issue.getCustomFieldValue(cfSync), "Unsynced"), changeHolder);
+		updateFieldIfChanged(cfSync, issue, SalesforceSyncState.UNSYNCED, changeHolder);
 	}
 	
 	/** Event fired when event is created
@@ -436,76 +557,81 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	public void issueCreated(IssueEvent event)
 	{
 		Issue i = event.getIssue();//the issue that was created
-		
-		if(searchArrayForString(this._projects, i.getProjectObject().getKey()))//make sure that this issue is in a project that is set to be synced with Salesforce
+		MDC.put(MDC_ISSUE_KEY, i.getKey());
+		try
 		{
+			if(searchArrayForString(this._projects, i.getProjectObject().getKey()))//make sure that this issue is in a project that is set to be synced with Salesforce
+			{
 		
-			//The custom field manager is used to create Ojbects to govern the cusom fields in Jira
-			CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
+				//The custom field manager is used to create Ojbects to govern the cusom fields in Jira
+				CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
 			
-			//System.out.println("Starting to send case to Salesforce");
-			SoapBindingStub binding = null;
-			try
-			{
-				binding = login(this._uName, this._password + this._token);	
-			}catch(Exception ex){
-				sendFailedSyncNotification(i, ex);
-				unsyncIssue(i);
-				return;
-			}
+				//System.out.println("Starting to send case to Salesforce");
+				SoapBindingStub binding = null;
+				try
+				{
+					binding = login(this._uName, this._password + this._token);	
+				}catch(Exception ex){
+					sendFailedSyncNotification(i, ex);
+					unsyncIssue(i, ex);
+					return;
+				}
 			
-			//used to set values in custom Jira fields
-			IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
+				//used to set values in custom Jira fields
+				IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
 			
-			if(i.getReporter() != null && i.getAssignee() != null)
-			{
-				String conEmail = ((com.opensymphony.user.User)(i.getReporter())).getEmail();
-				String uEmail = ((com.opensymphony.user.User)(i.getAssignee())).getEmail();
-				
-				try
+				if(i.getReporter() != null && i.getAssignee() != null)
 				{
-					String[] contactInfo = getContactInfoByEmail(conEmail, binding);
-					String[] uInfo = getUserInfoByEmail(uEmail, binding);
-					if(uInfo == null || contactInfo == null)
+					String conEmail = ((com.opensymphony.user.User)(i.getReporter())).getEmail();
+					String uEmail = ((com.opensymphony.user.User)(i.getAssignee())).getEmail();
+				
+					try
 					{
-						//if the contact or user is missing in Salesforce
-						System.out.println("Id's returned as Blank " + conEmail + " " + uEmail);
-						System.out.println("Id's returned as Blank");
-						sendMissingContactNotification(i);									
-						return;					
-					}		
-					String caseId = createCase(uInfo[0], contactInfo[0], contactInfo[1], i.getIssueType().get("name").toString(), i.getSummary(), i.getDescription(), i.getKey(), binding );
+						String[] contactInfo = getContactInfoByEmail(conEmail, binding);
+						String[] uInfo = getUserInfoByEmail(uEmail, binding);
+						if(uInfo == null || contactInfo == null)
+						{
+							//if the contact or user is missing in Salesforce
+							log.warn("Reporter or assignee was not found in Salesforce");
+							sendMissingContactNotification(i);									
+							return;					
+						}		
+						String caseId = createCase(uInfo[0], contactInfo[0], contactInfo[1], i.getIssueType().get("name").toString(), i.getSummary(), i.getDescription(), i.getKey(), binding );
 					
-					String[] accountInfo = getAccountInfoById(contactInfo[1], binding);
-					String ownerName = getUserNameById(accountInfo[1], binding);
+						String[] accountInfo = getAccountInfoById(contactInfo[1], binding);
+						String ownerName = getUserNameById(accountInfo[1], binding);
 				
 				
-					//create the custom field objects 
-					CustomField cfAccountName = customFieldManager.getCustomFieldObjectByName("Salesforce Account");
-					CustomField cfAccountUrl = customFieldManager.getCustomFieldObjectByName("Salesforce Address");
-					CustomField cfAccountOwner = customFieldManager.getCustomFieldObjectByName("Salesforce Account Owner");
-					CustomField cfContactName = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Name");
-					CustomField cfContactEmail = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Email");
-					CustomField cfContactPhone = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Phone");
-					CustomField cfCaseId = customFieldManager.getCustomFieldObjectByName("Salesforce Case Id");
-					CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
+						//create the custom field objects 
+						CustomField cfAccountName = customFieldManager.getCustomFieldObjectByName("Salesforce Account");
+						CustomField cfAccountUrl = customFieldManager.getCustomFieldObjectByName("Salesforce Address");
+						CustomField cfAccountOwner = customFieldManager.getCustomFieldObjectByName("Salesforce Account Owner");
+						CustomField cfContactName = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Name");
+						CustomField cfContactEmail = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Email");
+						CustomField cfContactPhone = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Phone");
+						CustomField cfCaseId = customFieldManager.getCustomFieldObjectByName("Salesforce Case Id");
+						CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
 					
-					//set the values of the custom fields, see http://confluence.atlassian.com/pages/viewpage.action?pageId=160835
-					cfAccountName.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountName), accountInfo[0]), changeHolder);
-					cfAccountUrl.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountUrl), "https://na2.salesforce.com/"+ contactInfo[1]), changeHolder);
-					cfAccountOwner.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountOwner), ownerName), changeHolder);
-					cfContactName.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactName), contactInfo[2]), changeHolder);
-					cfContactEmail.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactEmail), contactInfo[4]), changeHolder);
-					cfContactPhone.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactPhone), contactInfo[3]), changeHolder);
-					cfCaseId.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfCaseId), caseId), changeHolder);
-					cfSync.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfSync), "Synced"), changeHolder);
-				}catch(Exception ex)
-				{
-					sendFailedSyncNotification(i, ex);
-					unsyncIssue(i);
-					return;
+						//set the values of the custom fields, see http://confluence.atlassian.com/pages/viewpage.action?pageId=160835
+						updateFieldIfChanged(cfAccountName, i, accountInfo[0], changeHolder);
+						updateFieldIfChanged(cfAccountUrl, i, "https://na2.salesforce.com/"+ contactInfo[1], changeHolder);
+						updateFieldIfChanged(cfAccountOwner, i, ownerName, changeHolder);
+						updateFieldIfChanged(cfContactName, i, contactInfo[2], changeHolder);
+						updateFieldIfChanged(cfContactEmail, i, contactInfo[4], changeHolder);
+						updateFieldIfChanged(cfContactPhone, i, contactInfo[3], changeHolder);
+						updateFieldIfChanged(cfCaseId, i, caseId, changeHolder);
+						updateFieldIfChanged(cfSync, i, SalesforceSyncState.SYNCED, changeHolder);
+						SalesforceSyncState.forIssue(i).markSynced(caseId, SalesforceSyncState.fingerprint(contactInfo[0], contactInfo[1], i.getSummary(), i.getDescription()));
+					}catch(Exception ex)
+					{
+						sendFailedSyncNotification(i, ex);
+						unsyncIssue(i, ex);
+						return;
+					}
 				}
 			}
+		}finally{
+			MDC.remove(MDC_ISSUE_KEY);
 		}
 	}
 	
@@ -515,115 +641,130 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	public void issueUpdated(IssueEvent event)
 	{
 		Issue i = event.getIssue();
-		
-		if(searchArrayForString(this._projects, i.getProjectObject().getKey()))
+		MDC.put(MDC_ISSUE_KEY, i.getKey());
+		try
 		{
+			if(searchArrayForString(this._projects, i.getProjectObject().getKey()))
+			{
 		
-			CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
-			CustomField cfCaseId = customFieldManager.getCustomFieldObjectByName("Salesforce Case Id");
-			
+				CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
+				CustomField cfCaseId = customFieldManager.getCustomFieldObjectByName("Salesforce Case Id");
+				SalesforceSyncState state = SalesforceSyncState.forIssue(i);
+				String existingCaseId = getCaseId(i, state, cfCaseId);
 			
-			if(i.getCustomFieldValue(cfCaseId) == null || i.getCustomFieldValue(cfCaseId) == "")//if a case hasn't been created yet for this issue, create a new case
-			{
-				System.out.println("Starting to send case to Salesforce");
-				SoapBindingStub binding = null;
-				try{
-					binding = login(this._uName, this._password + this._token);
-				}catch(Exception ex)
+				if(existingCaseId == null || existingCaseId.length() == 0)//if a case hasn't been created yet for this issue, create a new case
 				{
-					sendFailedSyncNotification(i, ex);
-					unsyncIssue(i);
-				}
+					log.debug("Starting to send case to Salesforce");
+					SoapBindingStub binding = null;
+					try{
+						binding = login(this._uName, this._password + this._token);
+					}catch(Exception ex)
+					{
+						sendFailedSyncNotification(i, ex);
+						unsyncIssue(i, ex);
+						return;
+					}
 							
-				CustomField cfAccountName = customFieldManager.getCustomFieldObjectByName("Salesforce Account");
-				CustomField cfAccountUrl = customFieldManager.getCustomFieldObjectByName("Salesforce Address");
-				CustomField cfAccountOwner = customFieldManager.getCustomFieldObjectByName("Salesforce Account Owner");
-				CustomField cfContactName = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Name");
-				CustomField cfContactEmail = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Email");
-				CustomField cfContactPhone = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Phone");
-				CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
+					CustomField cfAccountName = customFieldManager.getCustomFieldObjectByName("Salesforce Account");
+					CustomField cfAccountUrl = customFieldManager.getCustomFieldObjectByName("Salesforce Address");
+					CustomField cfAccountOwner = customFieldManager.getCustomFieldObjectByName("Salesforce Account Owner");
+					CustomField cfContactName = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Name");
+					CustomField cfContactEmail = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Email");
+					CustomField cfContactPhone = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Phone");
+					CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
 				
-				IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
+					IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
 				
-				if(i.getReporter() != null && i.getAssignee() != null)
-				{
+					if(i.getReporter() != null && i.getAssignee() != null)
+					{
 				
-					String conEmail = ((com.opensymphony.user.User)(i.getReporter())).getEmail();
-					String uEmail = ((com.opensymphony.user.User)(i.getAssignee())).getEmail();
+						String conEmail = ((com.opensymphony.user.User)(i.getReporter())).getEmail();
+						String uEmail = ((com.opensymphony.user.User)(i.getAssignee())).getEmail();
 					
-					try
-					{
-						String[] contactInfo = getContactInfoByEmail(conEmail, binding);
-						String[] uInfo = getUserInfoByEmail(uEmail, binding);
-						if(uInfo == null || contactInfo == null)
+						try
 						{
-							System.out.println("Id's returned as Blank");
-							sendMissingContactNotification(i);
-							return;
+							String[] contactInfo = getContactInfoByEmail(conEmail, binding);
+							String[] uInfo = getUserInfoByEmail(uEmail, binding);
+							if(uInfo == null || contactInfo == null)
+							{
+								log.warn("Reporter or assignee was not found in Salesforce");
+								sendMissingContactNotification(i);
+								return;
 							
-						}		
-						String caseId = createCase(uInfo[0], contactInfo[0], contactInfo[1], i.getIssueType().get("name").toString(), i.getSummary(), i.getDescription(), i.getKey(), binding );				
-						String[] accountInfo = getAccountInfoById(contactInfo[1], binding);
-						String ownerName = getUserNameById(accountInfo[1], binding);
+							}		
+							String caseId = createCase(uInfo[0], contactInfo[0], contactInfo[1], i.getIssueType().get("name").toString(), i.getSummary(), i.getDescription(), i.getKey(), binding );				
+							String[] accountInfo = getAccountInfoById(contactInfo[1], binding);
+							String ownerName = getUserNameById(accountInfo[1], binding);
 					
 					
-						cfAccountName.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountName), accountInfo[0]), changeHolder);
-						cfAccountUrl.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountUrl), "https://na2.salesforce.com/"+ contactInfo[1]), changeHolder);	
-						cfAccountOwner.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountOwner), ownerName), changeHolder);
-						cfContactName.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactName), contactInfo[2]), changeHolder);
-						cfContactEmail.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactEmail), contactInfo[4]), changeHolder);
-						cfContactPhone.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactPhone), contactInfo[3]), changeHolder);
-						cfCaseId.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfCaseId), caseId), changeHolder);
-						cfSync.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfSync), "Synced"), changeHolder);
+							updateFieldIfChanged(cfAccountName, i, accountInfo[0], changeHolder);
+							updateFieldIfChanged(cfAccountUrl, i, "https://na2.salesforce.com/"+ contactInfo[1], changeHolder);	
+							updateFieldIfChanged(cfAccountOwner, i, ownerName, changeHolder);
+							updateFieldIfChanged(cfContactName, i, contactInfo[2], changeHolder);
+							updateFieldIfChanged(cfContactEmail, i, contactInfo[4], changeHolder);
+							updateFieldIfChanged(cfContactPhone, i, contactInfo[3], changeHolder);
+							updateFieldIfChanged(cfCaseId, i, caseId, changeHolder);
+							updateFieldIfChanged(cfSync, i, SalesforceSyncState.SYNCED, changeHolder);
+							state.markSynced(caseId, SalesforceSyncState.fingerprint(contactInfo[0], contactInfo[1], i.getSummary(), i.getDescription()));
+						}catch(Exception ex){
+							sendFailedSyncNotification(i, ex);
+							unsyncIssue(i, ex);
+						}
+					}
+				}else{//if a case has already been created, update the information in salesforce
+					log.debug("Starting to send case to Salesforce");
+					SoapBindingStub binding = null;
+					try
+					{
+						binding = login(this._uName, this._password + this._token);
 					}catch(Exception ex){
 						sendFailedSyncNotification(i, ex);
-						unsyncIssue(i);
+						unsyncIssue(i, ex);
+						return;
 					}
-				}
-			}else{//if a case has already been created, update the information in salesforce
-				System.out.println("Starting to send case to Salesforce");
-				SoapBindingStub binding = null;
-				try
-				{
-					binding = login(this._uName, this._password + this._token);
-				}catch(Exception ex){
-					sendFailedSyncNotification(i, ex);
-					unsyncIssue(i);
-					return;
-				}
 				
-				try{
-					String conEmail = ((com.opensymphony.user.User)(i.getReporter())).getEmail();
-					//System.out.println(conEmail + ", " + getContactEmailById(getContactIdByCase((String)i.getCustomFieldValue(cfCaseId), binding),binding));
+					try{
+						String conEmail = ((com.opensymphony.user.User)(i.getReporter())).getEmail();
+						//System.out.println(conEmail + ", " + getContactEmailById(getContactIdByCase((String)i.getCustomFieldValue(cfCaseId), binding),binding));
 										
-					String[] contactInfo = getContactInfoByEmail(conEmail, binding);
-					updateCase((String)i.getCustomFieldValue(cfCaseId), contactInfo[0], contactInfo[1], i.getSummary(), i.getDescription(), binding);
-					String[] accountInfo = getAccountInfoById(contactInfo[1], binding);
+						String[] contactInfo = getContactInfoByEmail(conEmail, binding);
+						String fingerprint = SalesforceSyncState.fingerprint(contactInfo[0], contactInfo[1], i.getSummary(), i.getDescription());
+						if(state.isSyncedWith(fingerprint))//the case already has these values, only the Jira fields below need refreshing
+						{
+							log.debug("Case is already up to date in Salesforce");
+						}else{
+							updateCase(existingCaseId, contactInfo[0], contactInfo[1], i.getSummary(), i.getDescription(), binding);
+						}
+						String[] accountInfo = getAccountInfoById(contactInfo[1], binding);
 					
-					CustomField cfContactName = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Name");
-					CustomField cfContactEmail = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Email");
-					CustomField cfContactPhone = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Phone");
-					CustomField cfAccountName = customFieldManager.getCustomFieldObjectByName("Salesforce Account");
-					CustomField cfAccountUrl = customFieldManager.getCustomFieldObjectByName("Salesforce Address");
-					CustomField cfAccountOwner = customFieldManager.getCustomFieldObjectByName("Salesforce Account Owner");
-					CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
+						CustomField cfContactName = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Name");
+						CustomField cfContactEmail = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Email");
+						CustomField cfContactPhone = customFieldManager.getCustomFieldObjectByName("Salesforce Contact Phone");
+						CustomField cfAccountName = customFieldManager.getCustomFieldObjectByName("Salesforce Account");
+						CustomField cfAccountUrl = customFieldManager.getCustomFieldObjectByName("Salesforce Address");
+						CustomField cfAccountOwner = customFieldManager.getCustomFieldObjectByName("Salesforce Account Owner");
+						CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
 					
-					IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
+						IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
 					
-					cfContactName.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactName), contactInfo[2]), changeHolder);
-					cfContactEmail.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactEmail), contactInfo[4]), changeHolder);
-					cfContactPhone.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfContactPhone), contactInfo[3]), changeHolder);
-					cfAccountName.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountName), accountInfo[0]), changeHolder);
-					cfAccountUrl.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountUrl), "https://na2.salesforce.com/"+ contactInfo[1]), changeHolder);
-					String ownerName = getUserNameById(accountInfo[1], binding);
-					cfAccountOwner.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfAccountOwner), ownerName), changeHolder);
-					cfSync.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfSync), "Synced"), changeHolder);
+						updateFieldIfChanged(cfContactName, i, contactInfo[2], changeHolder);
+						updateFieldIfChanged(cfContactEmail, i, contactInfo[4], changeHolder);
+						updateFieldIfChanged(cfContactPhone, i, contactInfo[3], changeHolder);
+						updateFieldIfChanged(cfAccountName, i, accountInfo[0], changeHolder);
+						updateFieldIfChanged(cfAccountUrl, i, "https://na2.salesforce.com/"+ contactInfo[1], changeHolder);
+						String ownerName = getUserNameById(accountInfo[1], binding);
+						updateFieldIfChanged(cfAccountOwner, i, ownerName, changeHolder);
+						updateFieldIfChanged(cfSync, i, SalesforceSyncState.SYNCED, changeHolder);
+						state.markSynced(existingCaseId, fingerprint);
 					
-				}catch(Exception ex){
-					sendFailedSyncNotification(i, ex);
-					unsyncIssue(i);
+					}catch(Exception ex){
+						sendFailedSyncNotification(i, ex);
+						unsyncIssue(i, ex);
+					}
 				}
 			}
+		}finally{
+			MDC.remove(MDC_ISSUE_KEY);
 		}
 	}
 	
@@ -634,27 +775,35 @@ public class SalesforceConnectorListener extends AbstractIssueEventListener
 	public void issueClosed(IssueEvent event)
 	{
 		Issue i = event.getIssue();
-		if(searchArrayForString(this._projects, i.getProjectObject().getKey()))
+		MDC.put(MDC_ISSUE_KEY, i.getKey());
+		try
 		{
-			CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
-			CustomField cfCaseId = customFieldManager.getCustomFieldObjectByName("Salesforce Case Id");
-			CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
-			IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
-			String caseId = (String)i.getCustomFieldValue(cfCaseId);
-			if(caseId != null && caseId != "")
+			if(searchArrayForString(this._projects, i.getProjectObject().getKey()))
 			{
-				System.out.println("Starting to send case to Salesforce");
-				try{
-					SoapBindingStub binding = login(this._uName, this._password + this._token);
-					closeCase(caseId, binding);
-					cfSync.updateValue(null, i, new ModifiedValue(i.getCustomFieldValue(cfSync), "Synced"), changeHolder);
+				CustomFieldManager customFieldManager = ComponentManager.getInstance().getCustomFieldManager();
+				CustomField cfCaseId = customFieldManager.getCustomFieldObjectByName("Salesforce Case Id");
+				CustomField cfSync = customFieldManager.getCustomFieldObjectByName("Salesforce Synced");
+				IssueChangeHolder changeHolder = new DefaultIssueChangeHolder();
+				SalesforceSyncState state = SalesforceSyncState.forIssue(i);
+				String caseId = getCaseId(i, state, cfCaseId);
+				if(caseId != null && caseId.length() != 0)
+				{
+					log.debug("Starting to send case to Salesforce");
+					try{
+						SoapBindingStub binding = login(this._uName, this._password + this._token);
+						closeCase(caseId, binding);
+						updateFieldIfChanged(cfSync, i, SalesforceSyncState.SYNCED, changeHolder);
+						state.markSynced(caseId, null);//closing doesn't send any values, keep the last fingerprint
 					
-				}catch(Exception ex){
-					sendFailedSyncNotification(i, ex);
-					unsyncIssue(i);
-				}	
+					}catch(Exception ex){
+						sendFailedSyncNotification(i, ex);
+						unsyncIssue(i, ex);
+					}	
 				
+				}
 			}
+		}finally{
+			MDC.remove(MDC_ISSUE_KEY);
 		}
 	}
 	
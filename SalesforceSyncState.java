@@ -0,0 +1,169 @@
+package com.hannonhill.jira.plugins;
+
+import java.security.MessageDigest;
+import java.util.Collection;
+
+import com.atlassian.core.ofbiz.util.OFBizPropertyUtils;
+import com.atlassian.jira.issue.Issue;
+import com.opensymphony.module.propertyset.PropertySet;
+
+/**
+ * Salesforce sync state of a Jira issue. It is kept in Jira's property tables keyed by the issue id,
+ * so recording it doesn't write custom field values or touch the issue itself.
+ */
+public class SalesforceSyncState {
+
+	public static final String SYNCED = "Synced";
+	public static final String UNSYNCED = "Unsynced";
+
+	private static final String KEY_PREFIX = "salesforce.";
+	private static final String KEY_CASE_ID = "salesforce.caseId";
+	private static final String KEY_STATUS = "salesforce.status";
+	private static final String KEY_FINGERPRINT = "salesforce.fingerprint";
+	private static final String KEY_ATTEMPTS = "salesforce.attempts";
+	private static final String KEY_LAST_ERROR = "salesforce.lastError";
+
+	private static final int MAX_ERROR_LENGTH = 255;//size of a string property value
+
+	private final PropertySet _props;
+
+	private SalesforceSyncState(PropertySet props)
+	{
+		this._props = props;
+	}
+
+	/**
+	 * @param issue Jira issue
+	 * @return The sync state stored for the issue
+	 */
+	public static SalesforceSyncState forIssue(Issue issue)
+	{
+		return new SalesforceSyncState(OFBizPropertyUtils.getPropertySet(issue.getGenericValue()));
+	}
+
+	/**
+	 * Fingerprint of the values updateCase() writes to the Case, used to skip updates that wouldn't change it
+	 * @param contactId Salesforce Id of the Contact associated with the Case
+	 * @param accountId Salesforce Id of the Account associated with the Contact
+	 * @param summary Jira Summary of the Issue
+	 * @param description Jira Description of the Issue
+	 * @return MD5 hex digest of the values
+	 */
+	public static String fingerprint(String contactId, String accountId, String summary, String description)
+	{
+		try{
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest((contactId + "\n" + accountId + "\n" + summary + "\n" + description).getBytes("UTF-8"));
+			StringBuffer hex = new StringBuffer();
+			for(int i = 0; i < digest.length; i++)
+			{
+				hex.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+			}
+			return hex.toString();
+		}catch(Exception ex)//MD5 and UTF-8 are always available
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * @return Salesforce Id of the Case, null if no case has been created
+	 */
+	public String getCaseId()
+	{
+		return this._props.getString(KEY_CASE_ID);
+	}
+
+	/**
+	 * @return SYNCED, UNSYNCED or null if the issue has never been sent to Salesforce
+	 */
+	public String getStatus()
+	{
+		return this._props.getString(KEY_STATUS);
+	}
+
+	/**
+	 * @return Fingerprint of the values last sent to Salesforce
+	 */
+	public String getFingerprint()
+	{
+		return this._props.getString(KEY_FINGERPRINT);
+	}
+
+	/**
+	 * @return Number of failed sync attempts since the last successful sync
+	 */
+	public int getAttempts()
+	{
+		return this._props.getInt(KEY_ATTEMPTS);//0 when the property doesn't exist
+	}
+
+	/**
+	 * @return Error from the last failed sync attempt
+	 */
+	public String getLastError()
+	{
+		return this._props.getString(KEY_LAST_ERROR);
+	}
+
+	/**
+	 * @param fingerprint Fingerprint of the current issue values
+	 * @return true if the last sync succeeded with these exact values
+	 */
+	public boolean isSyncedWith(String fingerprint)
+	{
+		return SYNCED.equals(getStatus()) && fingerprint.equals(getFingerprint());
+	}
+
+	/**
+	 * Record a successful sync
+	 * @param caseId Salesforce Id of the Case
+	 * @param fingerprint Fingerprint of the values that were sent, null to keep the last one
+	 */
+	public void markSynced(String caseId, String fingerprint)
+	{
+		this._props.setString(KEY_CASE_ID, caseId);
+		this._props.setString(KEY_STATUS, SYNCED);
+		if(fingerprint != null)
+		{
+			this._props.setString(KEY_FINGERPRINT, fingerprint);
+		}
+		Collection keys = this._props.getKeys(KEY_PREFIX);//one read instead of checking each failure property
+		if(keys.contains(KEY_ATTEMPTS))
+		{
+			this._props.remove(KEY_ATTEMPTS);
+		}
+		if(keys.contains(KEY_LAST_ERROR))
+		{
+			this._props.remove(KEY_LAST_ERROR);
+		}
+	}
+
+	/**
+	 * Record a failed sync
+	 * @param ex Exception that was thrown
+	 */
+	public void markUnsynced(Exception ex)
+	{
+		String error = ex.toString();
+		if(error.length() > MAX_ERROR_LENGTH)
+		{
+			error = error.substring(0, MAX_ERROR_LENGTH);
+		}
+		this._props.setString(KEY_STATUS, UNSYNCED);
+		this._props.setInt(KEY_ATTEMPTS, getAttempts() + 1);
+		this._props.setString(KEY_LAST_ERROR, error);
+	}
+
+	/**
+	 * Forget the Case, used when the "Salesforce Case Id" field no longer matches it
+	 */
+	public void clearCase()
+	{
+		this._props.remove(KEY_CASE_ID);
+		if(this._props.exists(KEY_FINGERPRINT))
+		{
+			this._props.remove(KEY_FINGERPRINT);
+		}
+	}
+}